@@ -94,6 +94,10 @@ public class AkkaStartSystem {
                     n1, n2, n3, n4, n5, n6, n7, n8, n9, n10
             );
 
+            // Puts together the global snapshots taken with the `snap` command
+            final ActorRef snapshot_collector = system.actorOf(
+                    SnapshotCollector.props(ALL_NODES.size()), "SnapshotCollector");
+
 
             // -----------------------------------------------------
             // choose a random node as the initial possessor of the token
@@ -122,7 +126,12 @@ public class AkkaStartSystem {
                     "\t 'cs node_name' so that `node_name` enters critical section\n" +
                     "\t 'csall' so ALL nodes enter into the critical section\n" +
                     "\t 'st node_name' to make `node_name` print its internal state\n" +
-                    "\t 'crash node_name' so that `node_name` simulates a crash\n\n" +
+                    "\t 'snap node_name' to take a snapshot of all nodes, starting from `node_name`\n" +
+                    "\t 'crash node_name' so that `node_name` simulates a crash\n" +
+                    "\t 'prefetch on|off' so that idle holders push the token towards the most frequent requester\n" +
+                    "\t 'limits max_pending max_ahead report_depth' to set the admission limits of all nodes\n" +
+                    "\t 'batch n' so that nodes execute up to `n` pending requests each time they enter the CS\n" +
+                    "\t 'audit directory' so that all nodes write their token events to `directory`\n\n" +
                     "Note that multiple inputs can be entered at once by separating them with ; . For example:\n" +
                     "\t cs node_1; cs node_2; crash node_5\n" +
                     "------------------------------------------";
@@ -173,6 +182,57 @@ public class AkkaStartSystem {
                                         ActorRef.noSender());
 
 
+                    } else if (u_input.startsWith("snap ")) {
+                        String initiator_name = u_input.split(" ")[1];
+                        ActorRef initiator = null;
+                        for (ActorRef nd : ALL_NODES) {
+                            if (nd.path().name().equals(initiator_name)) {
+                                initiator = nd;
+                            }
+                        }
+
+                        if (initiator == null) {
+                            System.out.println("Node '" + initiator_name + "' doesn't exist");
+                        } else {
+                            snapshot_collector.tell(new SnapshotCollector.TakeSnapshot(initiator),
+                                    ActorRef.noSender());
+                        }
+
+                    } else if (u_input.startsWith("prefetch ")) {
+                        boolean enabled = u_input.split(" ")[1].equals("on");
+                        for (ActorRef nd : ALL_NODES) {
+                            nd.tell(new NodeAct.USetPrefetch(enabled), ActorRef.noSender());
+                        }
+
+                    } else if (u_input.startsWith("limits ")) {
+                        String[] limits = u_input.split(" ");
+                        try {
+                            NodeAct.USetAdmissionLimits msg = new NodeAct.USetAdmissionLimits(
+                                    Integer.parseInt(limits[1]),
+                                    Integer.parseInt(limits[2]),
+                                    Integer.parseInt(limits[3]));
+                            for (ActorRef nd : ALL_NODES) {
+                                nd.tell(msg, ActorRef.noSender());
+                            }
+                        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                            System.out.println("Usage: limits max_pending max_ahead report_depth");
+                        }
+
+                    } else if (u_input.startsWith("batch ")) {
+                        try {
+                            int batch_size = Integer.parseInt(u_input.split(" ")[1]);
+                            for (ActorRef nd : ALL_NODES) {
+                                nd.tell(new NodeAct.USetBatchSize(batch_size), ActorRef.noSender());
+                            }
+                        } catch (NumberFormatException e) {
+                            System.out.println("Usage: batch n");
+                        }
+
+                    } else if (u_input.startsWith("audit ")) {
+                        for (ActorRef nd : ALL_NODES) {
+                            nd.tell(new NodeAct.UEnableAuditLog(u_input.split(" ")[1]), ActorRef.noSender());
+                        }
+
                     } else if (u_input.startsWith("crash ")) {
                         system.actorSelection(
                                 "akka://DMX/user/" + u_input.split(" ")[1])
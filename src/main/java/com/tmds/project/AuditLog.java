@@ -0,0 +1,123 @@
+package com.tmds.project;
+
+import akka.actor.ActorRef;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Binary, append-only log of the token events of a single {@link NodeAct}. Events are encoded into an in-memory
+ * buffer, and full buffers are handed to an {@link AuditLogWriter} which appends them to the file, so the node
+ * never waits for the disk.
+ * <p>
+ * Format (big endian). The file is a sequence of records, each starting with its type byte:
+ * <ul>
+ * <li>`SESSION`: magic (int), version (byte), node name (short length + UTF-8). Written every time a node opens
+ * the log, and resets the peer names</li>
+ * <li>`PEER`: peer id (short), peer name (short length + UTF-8). Defines the id used for a peer in the events
+ * that follow</li>
+ * <li>any other type is an event: time in microseconds since the epoch (long), peer id (short), argument (short)</li>
+ * </ul>
+ */
+public class AuditLog {
+
+    static public final int MAGIC = 0x444D5841; // "DMXA"
+    static public final byte VERSION = 2;
+
+    // record types
+    static public final byte SESSION = 0;
+    static public final byte PEER = 1;
+    static public final byte REQUEST = 2; // token request received from peer (self for a local request)
+    static public final byte GRANT = 3; // token sent to peer. Argument is 1 if it was sent speculatively
+    static public final byte RECEIVE = 4; // token received from peer
+    static public final byte ENTER = 5; // entered the CS. Argument is the number of requests in the batch
+    static public final byte EXIT = 6; // exited the CS. Argument is the number of requests executed
+    static public final byte RESTART = 7; // the node crashed and started its recovery
+    static public final byte ADVISE = 8; // advise received from peer during the recovery
+    static public final byte ACCEPT = 9; // a local request to enter the CS was accepted. Argument is its local id
+                                         // (low 16 bits, which is enough to tell apart the requests waiting)
+    static public final byte REJECT = 10; // a local request to enter the CS was rejected by the admission control
+    static public final byte TIMEOUT = 11; // a local request gave up. Argument is its local id (as in `ACCEPT`)
+
+    static public final short NO_PEER = -1;
+    static public final int EVENT_SIZE = 1 + 8 + 2 + 2;
+
+    static private final int BUFFER_SIZE = 8192;
+
+    private final ActorRef writer;
+    private final ByteBuffer buffer;
+    private final HashMap<ActorRef, Short> peer_ids; // peers that already have a `PEER` record in this session
+
+    public AuditLog(ActorRef writer, String node) {
+        this.writer = writer;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        this.peer_ids = new HashMap<>();
+
+        this.buffer.put(SESSION);
+        this.buffer.putInt(MAGIC);
+        this.buffer.put(VERSION);
+        putName(node);
+    }
+
+    /**
+     * Adds an event to the log
+     *
+     * @param type one of the event types
+     * @param peer the other node involved in the event (can be null)
+     * @param arg  extra information, which depends on the type
+     */
+    public void record(byte type, ActorRef peer, int arg) {
+        short peer_id = NO_PEER;
+
+        if (peer != null) {
+            Short known_id = this.peer_ids.get(peer);
+            if (known_id == null) {
+                known_id = (short) this.peer_ids.size();
+                this.peer_ids.put(peer, known_id);
+
+                byte[] name = peer.path().name().getBytes(StandardCharsets.UTF_8);
+                ensureSpace(1 + 2 + 2 + name.length);
+                this.buffer.put(PEER);
+                this.buffer.putShort(known_id);
+                this.buffer.putShort((short) name.length);
+                this.buffer.put(name);
+            }
+            peer_id = known_id;
+        }
+
+        Instant now = Instant.now();
+        ensureSpace(EVENT_SIZE);
+        this.buffer.put(type);
+        this.buffer.putLong(now.getEpochSecond() * 1_000_000 + now.getNano() / 1_000);
+        this.buffer.putShort(peer_id);
+        this.buffer.putShort((short) arg);
+    }
+
+    /**
+     * Hands whatever is in the buffer to the writer
+     */
+    public void flush() {
+        if (this.buffer.position() == 0) {
+            return;
+        }
+
+        this.writer.tell(new AuditLogWriter.Append(Arrays.copyOf(this.buffer.array(), this.buffer.position())),
+                ActorRef.noSender());
+        this.buffer.clear();
+    }
+
+    private void ensureSpace(int bytes) {
+        if (this.buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void putName(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        this.buffer.putShort((short) bytes.length);
+        this.buffer.put(bytes);
+    }
+}
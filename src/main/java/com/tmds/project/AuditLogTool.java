@@ -0,0 +1,279 @@
+package com.tmds.project;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Offline tool that reads the audit logs written by the nodes (see {@link AuditLog}), merges them into a single
+ * timeline and prints statistics about how long the token was held and how long nodes waited for it.
+ * <p>
+ * Usage: `AuditLogTool [--timeline] file_or_directory...`. Directories are searched for `.dmxa` files.
+ */
+public class AuditLogTool {
+
+    static private final String[] TYPE_NAMES = {
+            "SESSION", "PEER", "REQUEST", "GRANT", "RECEIVE", "ENTER", "EXIT", "RESTART", "ADVISE",
+            "ACCEPT", "REJECT", "TIMEOUT"
+    };
+
+    static private class Event {
+        public final long time; // microseconds since the epoch
+        public final String node;
+        public final byte type;
+        public final String peer; // null if the event doesn't involve another node
+        public final int arg;
+
+        public Event(long time, String node, byte type, String peer, int arg) {
+            this.time = time;
+            this.node = node;
+            this.type = type;
+            this.peer = peer;
+            this.arg = arg;
+        }
+    }
+
+    /**
+     * What we know about a node while going through the timeline
+     */
+    static private class NodeStats {
+        public Long hold_start; // when the node got the token (null if it doesn't have it)
+        // when each waiting local request was accepted, by local id. Insertion order is the order of the CS entries
+        public LinkedHashMap<Integer, Long> waiting = new LinkedHashMap<>();
+
+        public long grants;
+        public long speculative_grants;
+        public long entries;
+        public long restarts;
+        public long rejected;
+        public long timed_out;
+        public List<Long> hold_times = new ArrayList<>();
+        public List<Long> wait_times = new ArrayList<>();
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean print_timeline = false;
+        List<File> files = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.equals("--timeline")) {
+                print_timeline = true;
+                continue;
+            }
+
+            File file = new File(arg);
+            File[] in_directory = file.listFiles((dir, name) -> name.endsWith(".dmxa"));
+            if (in_directory != null) {
+                Collections.addAll(files, in_directory);
+            } else {
+                files.add(file);
+            }
+        }
+
+        if (files.isEmpty()) {
+            System.out.println("Usage: AuditLogTool [--timeline] file_or_directory...");
+            return;
+        }
+
+        List<Event> events = new ArrayList<>();
+        for (File file : files) {
+            readLog(file, events);
+        }
+        events.sort((a, b) -> Long.compare(a.time, b.time)); // stable, so events of a node keep their order
+
+        if (events.isEmpty()) {
+            System.out.println("No events found");
+            return;
+        }
+
+        if (print_timeline) {
+            long first = events.get(0).time;
+            for (Event e : events) {
+                System.out.printf("+%.3fms\t%s\t%s\t%s\t%d%n",
+                        (e.time - first) / 1000.0, e.node, TYPE_NAMES[e.type], e.peer != null ? e.peer : "-", e.arg);
+            }
+        }
+
+        printStatistics(events);
+    }
+
+    /**
+     * Reads all the events of a log file into `events`. A truncated record at the end of the file (a node that
+     * was killed while writing) is ignored.
+     */
+    static private void readLog(File file, List<Event> events) throws IOException {
+        String node = null;
+        HashMap<Short, String> peers = new HashMap<>();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    return;
+                }
+
+                if (type == AuditLog.SESSION) {
+                    if (in.readInt() != AuditLog.MAGIC) {
+                        System.out.println("Warning: " + file + " is not an audit log");
+                        return;
+                    }
+                    int version = in.readByte();
+                    if (version != AuditLog.VERSION) {
+                        System.out.println("Warning: " + file + " has unsupported version " + version);
+                        return;
+                    }
+                    node = readName(in);
+                    peers.clear();
+
+                } else if (type == AuditLog.PEER) {
+                    short id = in.readShort();
+                    peers.put(id, readName(in));
+
+                } else if (type < TYPE_NAMES.length && node != null) {
+                    long time = in.readLong();
+                    short peer_id = in.readShort();
+                    int arg = in.readShort();
+                    events.add(new Event(time, node, (byte) type, peers.get(peer_id), arg));
+
+                } else {
+                    System.out.println("Warning: " + file + " has an unknown record type " + type + ". Skipping the rest");
+                    return;
+                }
+            }
+        } catch (EOFException e) {
+            System.out.println("Warning: " + file + " ends with a truncated record");
+        }
+    }
+
+    static private String readName(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readShort()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static private void printStatistics(List<Event> events) {
+        TreeMap<String, NodeStats> nodes = new TreeMap<>();
+
+        for (Event e : events) {
+            NodeStats ns = nodes.computeIfAbsent(e.node, k -> new NodeStats());
+
+            switch (e.type) {
+                case AuditLog.RECEIVE:
+                    // a node that already holds the token can "receive" it from itself
+                    if (ns.hold_start == null) {
+                        ns.hold_start = e.time;
+                    }
+                    break;
+                case AuditLog.GRANT:
+                    if (ns.hold_start != null) {
+                        ns.hold_times.add(e.time - ns.hold_start);
+                        ns.hold_start = null;
+                    }
+                    ns.grants++;
+                    if (e.arg == 1) {
+                        ns.speculative_grants++;
+                    }
+                    break;
+                case AuditLog.ACCEPT:
+                    ns.waiting.put(e.arg, e.time);
+                    break;
+                case AuditLog.REJECT:
+                    ns.rejected++;
+                    break;
+                case AuditLog.TIMEOUT:
+                    ns.waiting.remove(e.arg);
+                    ns.timed_out++;
+                    break;
+                case AuditLog.ENTER:
+                    // the batch is made of the oldest waiting requests
+                    Iterator<Long> accepted = ns.waiting.values().iterator();
+                    for (int i = 0; i < e.arg && accepted.hasNext(); i++) {
+                        ns.wait_times.add(e.time - accepted.next());
+                        accepted.remove();
+                    }
+                    ns.entries += e.arg;
+                    break;
+                case AuditLog.RESTART:
+                    // the waiting requests are aborted by the crash
+                    ns.hold_start = null;
+                    ns.waiting.clear();
+                    ns.restarts++;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        List<Long> all_holds = new ArrayList<>();
+        List<Long> all_waits = new ArrayList<>();
+        long grants = 0;
+        long speculative_grants = 0;
+        long entries = 0;
+        long restarts = 0;
+        long rejected = 0;
+        long timed_out = 0;
+
+        System.out.println("node\tgrants\tspeculative\tcs_entries\trejected\ttimed_out\trestarts\thold(ms)\twait(ms)");
+        for (HashMap.Entry<String, NodeStats> entry : nodes.entrySet()) {
+            NodeStats ns = entry.getValue();
+            System.out.println(entry.getKey() + "\t" + ns.grants + "\t" + ns.speculative_grants + "\t" +
+                    ns.entries + "\t" + ns.rejected + "\t" + ns.timed_out + "\t" + ns.restarts + "\t" +
+                    describe(ns.hold_times) + "\t" + describe(ns.wait_times));
+
+            all_holds.addAll(ns.hold_times);
+            all_waits.addAll(ns.wait_times);
+            grants += ns.grants;
+            speculative_grants += ns.speculative_grants;
+            entries += ns.entries;
+            restarts += ns.restarts;
+            rejected += ns.rejected;
+            timed_out += ns.timed_out;
+        }
+
+        System.out.println();
+        System.out.println("Events: " + events.size() + " over " +
+                (events.get(events.size() - 1).time - events.get(0).time) / 1000 + "ms");
+        System.out.println("Token grants: " + grants + " (" + speculative_grants + " speculative)");
+        System.out.println("CS entries: " + entries);
+        System.out.println("Rejected requests: " + rejected);
+        System.out.println("Timed out requests: " + timed_out);
+        System.out.println("Restarts: " + restarts);
+        System.out.println("Hold time (ms): " + describe(all_holds));
+        System.out.println("Wait time (ms): " + describe(all_waits) + " (from acceptance to CS entry, per request)");
+    }
+
+    /**
+     * count/avg/p50/p99/max of a list of durations in microseconds, printed in milliseconds
+     */
+    static private String describe(List<Long> times) {
+        if (times.isEmpty()) {
+            return "-";
+        }
+
+        List<Long> sorted = new ArrayList<>(times);
+        Collections.sort(sorted);
+
+        long total = 0;
+        for (long t : sorted) {
+            total += t;
+        }
+
+        return String.format("n=%d avg=%.3f p50=%.3f p99=%.3f max=%.3f",
+                sorted.size(),
+                total / 1000.0 / sorted.size(),
+                sorted.get(sorted.size() / 2) / 1000.0,
+                sorted.get((int) Math.min(sorted.size() - 1, Math.ceil(sorted.size() * 0.99) - 1)) / 1000.0,
+                sorted.get(sorted.size() - 1) / 1000.0);
+    }
+}
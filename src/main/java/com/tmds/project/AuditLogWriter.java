@@ -0,0 +1,103 @@
+package com.tmds.project;
+
+import akka.Done;
+import akka.actor.AbstractActor;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class AuditLogWriter extends AbstractActor {
+
+    private LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+
+    private final String file_path;
+    private FileOutputStream out;
+
+    public AuditLogWriter(String file_path) {
+        this.file_path = file_path;
+    }
+
+    /**
+     * The writer does blocking IO, so it runs on the dispatcher that Akka has for this purpose instead of
+     * sharing the threads of the nodes
+     */
+    static public Props props(String file_path) {
+        return Props.create(AuditLogWriter.class, () -> new AuditLogWriter(file_path))
+                .withDispatcher("akka.actor.default-blocking-io-dispatcher");
+    }
+
+    // ----------------------------------------------------
+    // Message classes that are handled
+
+    /**
+     * Message sent by an {@link AuditLog} with a chunk of encoded records to add at the end of the file
+     */
+    static public class Append {
+        public final byte[] data;
+
+        public Append(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    /**
+     * Message sent by a {@link NodeAct} when it won't send anything else. The writer closes the file and
+     * answers with `Done`
+     */
+    static public class Close {
+    }
+
+    // ----------------------------------------------------
+    // implementation of handling for messages
+
+    @Override
+    public void preStart() throws IOException {
+        this.out = new FileOutputStream(this.file_path, true);
+    }
+
+    @Override
+    public void postStop() throws IOException {
+        if (this.out != null) {
+            this.out.close();
+        }
+    }
+
+    private void handleAppend(Append msg) {
+        if (this.out == null) {
+            log.error("Audit log {} is already closed. Dropping {} bytes", this.file_path, msg.data.length);
+            return;
+        }
+
+        try {
+            this.out.write(msg.data);
+        } catch (IOException e) {
+            log.error(e, "Couldn't write to audit log {}", this.file_path);
+        }
+    }
+
+    private void handleClose(Close msg) {
+        try {
+            if (this.out != null) {
+                this.out.close();
+            }
+        } catch (IOException e) {
+            log.error(e, "Couldn't close audit log {}", this.file_path);
+        }
+        this.out = null;
+
+        getSender().tell(Done.getInstance(), getSelf());
+    }
+
+    // ----------------------------------------------------
+    // mapping between message classes and methods for handling
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(Append.class, this::handleAppend)
+                .match(Close.class, this::handleClose)
+                .build();
+    }
+}
@@ -1,14 +1,26 @@
 package com.tmds.project;
 
+import akka.Done;
 import akka.actor.AbstractActorWithStash;
 import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.CoordinatedShutdown;
 import akka.actor.Props;
+import akka.actor.Terminated;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import akka.pattern.Patterns;
 
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
 
 public class NodeAct extends AbstractActorWithStash {
 
@@ -28,6 +40,37 @@ public class NodeAct extends AbstractActorWithStash {
     private boolean is_recovering; // tells if the current node is in recovery mode or not
     private HashMap<ActorRef, Advise> receivedAdvises; // to know which neighbors have sent an Advise message and what this message was
 
+    // specific for the global snapshot
+    private HashMap<Integer, SnapshotInProgress> snapshots; // snapshots for which we're still waiting for markers
+
+    // specific for the speculative token placement (prefetch)
+    static private final double DEMAND_DECAY = 0.9; // weight kept by the old requests each time a new one arrives
+    static private final double PREFETCH_MIN_DEMAND = 2.0; // don't guess with less history than this
+    static private final double PREFETCH_MIN_SHARE = 0.5; // share of the demand a neighbor needs to get the token
+    private boolean prefetch_enabled; // whether an idle holder may push the token towards the expected requester
+    private HashMap<ActorRef, Double> demand; // decayed count of the token requests received from each neighbor (or self)
+    private boolean holding_prefetched; // the token was pushed here speculatively, so it can't be pushed any further
+
+    // specific for the admission control
+    private LinkedList<LocalRequest> local_requests; // requests to enter the CS accepted by this node, in FIFO order
+    private int max_pending_local; // max number of local requests waiting at the same time
+    private int max_queue_ahead; // reject local requests if more than this many requests are estimated to be ahead
+    private int queue_depth_report; // tell a requester our queue depth once it reaches this value
+    private int upstream_depth; // queue depth last reported by our holder (0 if unknown or if we have the token)
+    private HashMap<ActorRef, Integer> reported_depths; // queue depth last reported to each requester in request_q
+    private long last_local_request_id; // used to tell apart local requests whose sender didn't give an id
+    private boolean self_request_pending; // a RequestToken sent to ourselves is still in the mailbox or in the stash
+
+    // specific for the batched access to the resource
+    private int batch_size; // max number of local requests executed in a single access to the resource
+    private int current_batch; // number of local requests in the access currently in progress (0 if none)
+
+    // specific for the audit log
+    static private final Duration AUDIT_FLUSH_INTERVAL = Duration.ofSeconds(1);
+    static private final Duration AUDIT_CLOSE_TIMEOUT = Duration.ofSeconds(3);
+    private AuditLog audit_log; // binary log of the token events (null if disabled)
+    private ActorRef audit_log_writer;
+
     public NodeAct(ActorRef resource_actor) {
         this.resource_actor = resource_actor;
 
@@ -37,6 +80,24 @@ public class NodeAct extends AbstractActorWithStash {
 
         this.is_recovering = false;
         this.receivedAdvises = new HashMap<>();
+
+        this.snapshots = new HashMap<>();
+
+        this.prefetch_enabled = false;
+        this.demand = new HashMap<>();
+        this.holding_prefetched = false;
+
+        this.local_requests = new LinkedList<>();
+        this.max_pending_local = 8;
+        this.max_queue_ahead = 64;
+        this.queue_depth_report = 4;
+        this.upstream_depth = 0;
+        this.reported_depths = new HashMap<>();
+        this.last_local_request_id = 0;
+        this.self_request_pending = false;
+
+        this.batch_size = 1;
+        this.current_batch = 0;
     }
 
 
@@ -83,6 +144,15 @@ public class NodeAct extends AbstractActorWithStash {
      * The sending of this message implies that the sender (before sending) holds the token
      */
     static public class SendToken {
+        public final boolean speculative; // sent by an idle holder without a request (prefetch)
+
+        public SendToken() {
+            this(false);
+        }
+
+        public SendToken(boolean speculative) {
+            this.speculative = speculative;
+        }
     }
 
     /**
@@ -104,6 +174,15 @@ public class NodeAct extends AbstractActorWithStash {
      * finished. This message can contain the result obtained after executing the CS (if any)
      */
     static public class ExitCriticalSection {
+        public final int entries; // how many of the local requests were executed
+
+        public ExitCriticalSection() {
+            this(1);
+        }
+
+        public ExitCriticalSection(int entries) {
+            this.entries = entries;
+        }
     }
 
     /**
@@ -135,6 +214,40 @@ public class NodeAct extends AbstractActorWithStash {
     static public class InitializeRecovery {
     }
 
+    /**
+     * Chandy-Lamport marker for the global snapshot. The first marker a node receives for a given snapshot makes it
+     * record its local state and send the marker to all its neighbors. A marker without sender (sent by the
+     * {@link SnapshotCollector}) means that this node is the initiator of the snapshot.
+     */
+    static public class SnapshotMarker {
+        public final int snapshot_id;
+        public final ActorRef collector; // actor to which the local snapshot must be sent
+
+        public SnapshotMarker(int snapshot_id, ActorRef collector) {
+            this.snapshot_id = snapshot_id;
+            this.collector = collector;
+        }
+    }
+
+    /**
+     * State of a snapshot in which this node has recorded its local state, but that still misses the
+     * marker of some neighbors. Several snapshots can be in progress at the same time.
+     */
+    static private class SnapshotInProgress {
+        public final ActorRef collector; // where the local snapshot is sent once complete
+        public final SnapshotCollector.NodeSnapshot local; // state recorded when the first marker was received
+        public final HashSet<ActorRef> pending_channels; // neighbors from which we still haven't received the marker
+        public final Set<Object> recorded; // in transit messages already recorded (a stashed message may be handled twice)
+
+        public SnapshotInProgress(ActorRef collector, SnapshotCollector.NodeSnapshot local,
+                                  HashSet<ActorRef> pending_channels) {
+            this.collector = collector;
+            this.local = local;
+            this.pending_channels = pending_channels;
+            this.recorded = Collections.newSetFromMap(new IdentityHashMap<>());
+        }
+    }
+
     /**
      * Message sent from the user to signal a specific actor to simulate a crash
      */
@@ -142,9 +255,151 @@ public class NodeAct extends AbstractActorWithStash {
     }
 
     /**
-     * Message sent from the user to signal a specific actor to enter the CS
+     * Message sent from the user to signal a specific actor to enter the CS. The sender gets back a
+     * {@link UEnterCSResult} once the request completes, is rejected or times out.
      */
     static public class UEnterCS {
+        public final long request_id; // echoed back in the result (0 if the sender doesn't care)
+        public final Duration max_wait; // give up if the CS hasn't been entered after this long (null to wait forever)
+
+        public UEnterCS() {
+            this(0, null);
+        }
+
+        public UEnterCS(long request_id, Duration max_wait) {
+            this.request_id = request_id;
+            this.max_wait = max_wait;
+        }
+    }
+
+    /**
+     * Result of a {@link UEnterCS} message, sent back to whoever sent it
+     */
+    static public class UEnterCSResult {
+        public enum Status {
+            COMPLETED, // the critical section was executed
+            REJECTED, // refused by the admission control, the CS was never requested
+            TIMED_OUT, // couldn't enter the CS within the `max_wait` of the request
+            ABORTED // the node crashed while the request was waiting
+        }
+
+        public final long request_id;
+        public final Status status;
+        public final String reason; // human readable explanation of the status
+        public final int queue_ahead; // estimate of the requests ahead of this one when it was received
+
+        public UEnterCSResult(long request_id, Status status, String reason, int queue_ahead) {
+            this.request_id = request_id;
+            this.status = status;
+            this.reason = reason;
+            this.queue_ahead = queue_ahead;
+        }
+    }
+
+    /**
+     * Message sent from the user to set how many pending local requests an actor can execute with a single
+     * access to the resource. Bigger batches amortize the cost of each entry, but make other nodes wait longer.
+     */
+    static public class USetBatchSize {
+        public final int batch_size;
+
+        public USetBatchSize(int batch_size) {
+            this.batch_size = batch_size;
+        }
+    }
+
+    /**
+     * Message sent from the user to make an actor record its token events in `directory`/`node_name`.dmxa
+     */
+    static public class UEnableAuditLog {
+        public final String directory;
+
+        public UEnableAuditLog(String directory) {
+            this.directory = directory;
+        }
+    }
+
+    /**
+     * Message that an actor sends to itself periodically so that the audit log gets written even when
+     * there are only a few events
+     */
+    static public class FlushAuditLog {
+    }
+
+    /**
+     * Sent when the actor system shuts down, so that the last events get written before the actors stop. The
+     * sender gets a `Done` once the file has been closed.
+     */
+    static public class CloseAuditLog {
+    }
+
+    /**
+     * Message sent from the user to change the admission limits of an actor
+     */
+    static public class USetAdmissionLimits {
+        public final int max_pending_local; // max number of local requests waiting at the same time
+        public final int max_queue_ahead; // max number of requests estimated to be ahead of a new local request
+        public final int queue_depth_report; // queue depth from which requesting neighbors are told about it
+
+        public USetAdmissionLimits(int max_pending_local, int max_queue_ahead, int queue_depth_report) {
+            this.max_pending_local = max_pending_local;
+            this.max_queue_ahead = max_queue_ahead;
+            this.queue_depth_report = queue_depth_report;
+        }
+    }
+
+    /**
+     * Backpressure message sent in response to a {@link RequestToken} when the request had to be queued
+     * behind many others. It lets the requester (and, through it, its own subtree) know how long the
+     * queue is before accepting more work. Once sent, a new one follows every time the depth changes, until
+     * it falls below the reporting threshold or the requester gets the token.
+     */
+    static public class QueueDepth {
+        public final int depth; // estimate of the number of requests ahead of the requester
+
+        public QueueDepth(int depth) {
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Message that an actor sends to itself when a local request has waited for `max_wait`
+     */
+    static public class LocalRequestTimeout {
+        public final long local_id;
+
+        public LocalRequestTimeout(long local_id) {
+            this.local_id = local_id;
+        }
+    }
+
+    /**
+     * A request to enter the CS accepted by this node that hasn't finished yet
+     */
+    static private class LocalRequest {
+        public final long local_id; // unique within this node
+        public final long request_id; // id given by the sender
+        public final ActorRef reply_to;
+        public final int queue_ahead;
+        public Cancellable timeout; // null if the request waits forever
+
+        public LocalRequest(long local_id, long request_id, ActorRef reply_to, int queue_ahead) {
+            this.local_id = local_id;
+            this.request_id = request_id;
+            this.reply_to = reply_to;
+            this.queue_ahead = queue_ahead;
+        }
+    }
+
+    /**
+     * Message sent from the user to enable or disable the speculative placement of the token (prefetch) on an actor
+     */
+    static public class USetPrefetch {
+        public final boolean enabled;
+
+        public USetPrefetch(boolean enabled) {
+            this.enabled = enabled;
+        }
     }
 
     /**
@@ -164,20 +419,44 @@ public class NodeAct extends AbstractActorWithStash {
 
                 .match(Initialize.class, this::handleInitialize)
 
-                .match(RequestToken.class, this::handleTokenRequest)
-                .match(SendToken.class, this::handleTokenReceive)
+                .match(RequestToken.class, m -> {
+                    recordInTransit(m);
+                    handleTokenRequest(m);
+                })
+                .match(SendToken.class, m -> {
+                    recordInTransit(m);
+                    handleTokenReceive(m);
+                })
 
                 .match(InvokePriviledgeSend.class, this::sendPriviledge)
 
                 .match(EnterCriticalSection.class, this::handleEnterCS)
                 .match(ExitCriticalSection.class, this::handleExitCS)
 
-                .match(Restart.class, this::handleRestart)
-                .match(Advise.class, this::handleAdvise)
+                .match(Restart.class, m -> {
+                    recordInTransit(m);
+                    handleRestart(m);
+                })
+                .match(Advise.class, m -> {
+                    recordInTransit(m);
+                    handleAdvise(m);
+                })
                 .match(InitializeRecovery.class, this::handleInitializeRecovery)
 
+                .match(SnapshotMarker.class, this::handleSnapshotMarker)
+
                 .match(USimulateCrash.class, this::usimulateCrash)
                 .match(UEnterCS.class, this::uenterCS)
+                .match(USetPrefetch.class, this::usetPrefetch)
+                .match(USetAdmissionLimits.class, this::usetAdmissionLimits)
+                .match(USetBatchSize.class, this::usetBatchSize)
+                .match(UEnableAuditLog.class, this::uenableAuditLog)
+                .match(FlushAuditLog.class, this::handleFlushAuditLog)
+                .match(CloseAuditLog.class, this::handleCloseAuditLog)
+                .match(Terminated.class, this::handleTerminated)
+
+                .match(QueueDepth.class, this::handleQueueDepth)
+                .match(LocalRequestTimeout.class, this::handleLocalRequestTimeout)
 
                 .match(InvokePrintInternalState.class, this::printInternalState)
 
@@ -230,12 +509,35 @@ public class NodeAct extends AbstractActorWithStash {
         ActorRef requester = getSender();
         log.info("Received token request from node {}", requester.path().name());
 
+        // the local requests for which we asked might have timed out or been aborted by a crash in the meantime
+        if (requester.equals(getSelf())) {
+            this.self_request_pending = false;
+            if (this.local_requests.isEmpty()) {
+                log.info("No local request is waiting anymore. Ignoring our own token request");
+                return;
+            }
+        }
+
+        // the token is already on its way to the requester (e.g. it was pushed there speculatively while this
+        // request was in transit). The requester will serve its own request_q once the token arrives, so asking
+        // it to send the token back would only add hops
+        if (!requester.equals(getSelf()) && requester.equals(this.holder)) {
+            log.info("Token request from {}, which already has the token. Ignoring", requester.path().name());
+            return;
+        }
+        audit(AuditLog.REQUEST, requester, 0);
+
+        recordDemand(requester);
+
         if (!this.request_q.contains(requester)) {
             this.request_q.add(requester);
         } else {
             log.info("Already have a token request from {}. Ignoring this one", requester.path().name());
         }
 
+        // let the requester know if it's queued behind many others
+        reportQueueDepths();
+
         // ask for the token if needed
         if (!this.holder.equals(getSelf()) &&
                 !this.request_q.isEmpty() &&
@@ -271,7 +573,10 @@ public class NodeAct extends AbstractActorWithStash {
      */
     private void handleTokenReceive(SendToken msg) {
         log.info("Received the token from node {}", getSender().path().name());
+        audit(AuditLog.RECEIVE, getSender(), 0);
         this.holder = getSelf(); // since we now own the token
+        this.holding_prefetched = msg.speculative;
+        this.upstream_depth = 0;
 
         // if current actor needs it then use it. Else send it over
         if (!this.request_q.isEmpty() &&
@@ -279,10 +584,16 @@ public class NodeAct extends AbstractActorWithStash {
             this.request_q.pop();
             this.using = true;
 
+            // all the local requests that are waiting (up to batch_size) are executed with a single access.
+            // The batch is fixed now so that they can't time out while the EnterCriticalSection message is on its way
+            this.current_batch = Math.max(1, Math.min(this.batch_size, this.local_requests.size()));
 
             // Current actor will send InvokePriviledgeSend to itself
             // once it exits the CS
             getSelf().tell(new EnterCriticalSection(), getSelf());
+
+            // nothing is ahead of us anymore, so the requesters queued here moved up
+            reportQueueDepths();
         } else {
             getSelf().tell(new InvokePriviledgeSend(), getSelf());
         }
@@ -312,8 +623,12 @@ public class NodeAct extends AbstractActorWithStash {
             this.asked = false;
 
             log.info("SM: Sending privilege to node: {}", this.holder.path().name());
+            audit(AuditLog.GRANT, this.holder, 0);
             this.holder.tell(new SendToken(), getSelf());
 
+            // everyone else moved one place up in the queue
+            reportQueueDepths();
+
         }
 
         // If after sending the token we still have other requesters in our request_q
@@ -328,6 +643,58 @@ public class NodeAct extends AbstractActorWithStash {
             this.holder.tell(new RequestToken(), getSelf());
         }
 
+        // nobody wants the token right now, so maybe move it closer to whoever is likely to want it next
+        if (this.prefetch_enabled
+                && this.holder.equals(getSelf())
+                && !this.using
+                && this.request_q.isEmpty()
+                && !this.holding_prefetched) {
+            prefetchToken();
+        }
+    }
+
+    /**
+     * Updates the demand statistics with a new token request coming from `requester`. Older requests
+     * weigh less and less so that the statistics follow changes in the demand.
+     *
+     * @param requester
+     */
+    private void recordDemand(ActorRef requester) {
+        this.demand.replaceAll((node, weight) -> weight * DEMAND_DECAY);
+        this.demand.merge(requester, 1.0, Double::sum);
+    }
+
+    /**
+     * Pushes the (idle) token one hop towards the neighbor that has asked for it most often lately. The node that
+     * receives it this way isn't allowed to push it further until it has used it itself, so a wrong guess costs
+     * at most one extra hop to whoever asks next.
+     */
+    private void prefetchToken() {
+        ActorRef best = null;
+        double best_weight = 0;
+        double total_weight = 0;
+
+        for (HashMap.Entry<ActorRef, Double> entry : this.demand.entrySet()) {
+            total_weight += entry.getValue();
+            if (entry.getValue() > best_weight) {
+                best = entry.getKey();
+                best_weight = entry.getValue();
+            }
+        }
+
+        if (best == null
+                || best.equals(getSelf())
+                || total_weight < PREFETCH_MIN_DEMAND
+                || best_weight / total_weight < PREFETCH_MIN_SHARE) {
+            return;
+        }
+
+        this.holder = best;
+        this.asked = false;
+
+        log.info("SM: Speculatively sending privilege to node: {}", this.holder.path().name());
+        audit(AuditLog.GRANT, this.holder, 1);
+        this.holder.tell(new SendToken(true), getSelf());
     }
 
     /**
@@ -337,10 +704,12 @@ public class NodeAct extends AbstractActorWithStash {
      */
     private void handleEnterCS(EnterCriticalSection msg) {
         this.using = true;
+        this.holding_prefetched = false;
 
-        log.info("SM: About to enter critical section. Sending access message");
+        log.info("SM: About to enter critical section. Sending access message for {} requests", this.current_batch);
+        audit(AuditLog.ENTER, null, this.current_batch);
 
-        resource_actor.tell(new ResourceActor.AccessResource(), getSelf());
+        resource_actor.tell(new ResourceActor.AccessResource(this.current_batch), getSelf());
     }
 
     /**
@@ -354,6 +723,18 @@ public class NodeAct extends AbstractActorWithStash {
     private void handleExitCS(ExitCriticalSection msg) {
         this.using = false;
         log.info("Just exited critical section");
+        audit(AuditLog.EXIT, null, msg.entries);
+
+        for (int i = 0; i < msg.entries && !this.local_requests.isEmpty(); i++) {
+            finishLocalRequest(this.local_requests.pop(), UEnterCSResult.Status.COMPLETED, "critical section executed");
+        }
+        this.current_batch = 0;
+
+        // if there are more local requests then queue again for the token. We go to the back of the
+        // request_q so that other nodes also get their turn
+        if (!this.local_requests.isEmpty()) {
+            requestTokenForLocal();
+        }
 
         getSelf().tell(new InvokePriviledgeSend(), getSelf());
     }
@@ -368,6 +749,11 @@ public class NodeAct extends AbstractActorWithStash {
     private void handleRestart(Restart msg) {
         log.info("SM: Received a restart message from node {}. Sending an advise", getSender().path().name());
 
+        // the queue that our holder reported to us was lost with the crash
+        if (getSender().equals(this.holder)) {
+            this.upstream_depth = 0;
+        }
+
         getSender().tell(
                 new Advise(this.holder,
                         this.asked,
@@ -384,6 +770,7 @@ public class NodeAct extends AbstractActorWithStash {
     private void handleAdvise(Advise advise) {
 
         this.receivedAdvises.putIfAbsent(getSender(), advise);
+        audit(AuditLog.ADVISE, getSender(), 0);
 
         log.info("Received advise message from {}", getSender().path().name());
 
@@ -474,6 +861,7 @@ public class NodeAct extends AbstractActorWithStash {
         }
 
         this.is_recovering = true;
+        audit(AuditLog.RESTART, null, 0);
 
         log.info("Node {} crashed! Initializing recovery procedure", getSelf().path().name());
 
@@ -482,6 +870,14 @@ public class NodeAct extends AbstractActorWithStash {
         this.asked = false;
         this.using = false;
         this.request_q.clear();
+        this.holding_prefetched = false;
+        this.upstream_depth = 0;
+        this.reported_depths.clear();
+
+        // the requests that were waiting are lost with the crash
+        while (!this.local_requests.isEmpty()) {
+            finishLocalRequest(this.local_requests.pop(), UEnterCSResult.Status.ABORTED, "node crashed");
+        }
 
         // setup datastructures for recovery procedure
         this.receivedAdvises.clear();
@@ -494,9 +890,336 @@ public class NodeAct extends AbstractActorWithStash {
 
     }
 
+    /**
+     * Handles a marker of the global snapshot. On the first marker of a snapshot the local state is recorded and the
+     * marker is forwarded to every neighbor, after that every message coming from a neighbor is recorded as in
+     * transit until the marker from that same neighbor arrives. Since Akka keeps the order of messages between a
+     * pair of actors this gives a consistent cut without stopping the token traffic.
+     * <p>
+     * Every neighbor sends exactly one marker per snapshot, so a marker for a snapshot that isn't in progress
+     * is always the first one of that snapshot.
+     *
+     * @param msg
+     */
+    private void handleSnapshotMarker(SnapshotMarker msg) {
+        if (this.neighbors == null) {
+            // not part of the tree yet. The collector gives up on the snapshot once it expires
+            log.warning("Marker for snapshot {} received before knowing the neighbors. Ignoring", msg.snapshot_id);
+            return;
+        }
+
+        SnapshotInProgress snapshot = this.snapshots.get(msg.snapshot_id);
+        if (snapshot == null) {
+            snapshot = new SnapshotInProgress(msg.collector,
+                    recordLocalState(msg.snapshot_id),
+                    new HashSet<>(this.neighbors));
+            this.snapshots.put(msg.snapshot_id, snapshot);
+
+            log.info("SM: Recording local state for snapshot {}", msg.snapshot_id);
+
+            for (ActorRef neighbor : this.neighbors) {
+                neighbor.tell(new SnapshotMarker(msg.snapshot_id, msg.collector), getSelf());
+            }
+        }
+
+        snapshot.pending_channels.remove(getSender());
+
+        if (snapshot.pending_channels.isEmpty()) {
+            this.snapshots.remove(msg.snapshot_id);
+            snapshot.collector.tell(snapshot.local, getSelf());
+        }
+    }
+
+    /**
+     * If a snapshot is in progress and the marker from the sender hasn't arrived yet, then the message
+     * was in transit when the snapshot was taken and is added to the local snapshot.
+     *
+     * @param msg
+     */
+    private void recordInTransit(Object msg) {
+        for (SnapshotInProgress snapshot : this.snapshots.values()) {
+            if (snapshot.pending_channels.contains(getSender()) && snapshot.recorded.add(msg)) {
+                snapshot.local.in_flight.add(new SnapshotCollector.ChannelMessage(
+                        getSender().path().name(),
+                        getSelf().path().name(),
+                        msg.getClass().getSimpleName()));
+            }
+        }
+    }
+
+    private SnapshotCollector.NodeSnapshot recordLocalState(int snapshot_id) {
+        List<String> request_q_nodes_names = new ArrayList<>();
+        for (ActorRef ract : this.request_q) {
+            request_q_nodes_names.add(ract.path().name());
+        }
+
+        return new SnapshotCollector.NodeSnapshot(
+                snapshot_id,
+                getSelf().path().name(),
+                this.holder != null ? this.holder.path().name() : null,
+                this.asked,
+                this.using,
+                this.is_recovering,
+                request_q_nodes_names,
+                this.local_requests.size(),
+                new ArrayList<>());
+    }
+
+    /**
+     * Admission control for the requests to enter the CS. A request is rejected straight away if this node already
+     * has too many requests waiting, or if too many requests are estimated to be ahead of it in the tree.
+     *
+     * @param msg
+     */
     private void uenterCS(UEnterCS msg) {
         log.info("User requested this node to enter the critical section");
-        getSelf().tell(new RequestToken(), getSelf());
+
+        int queue_ahead = estimateQueueAhead();
+        LocalRequest request = new LocalRequest(++this.last_local_request_id, msg.request_id, getSender(), queue_ahead);
+
+        if (this.local_requests.size() >= this.max_pending_local) {
+            audit(AuditLog.REJECT, null, 0);
+            finishLocalRequest(request, UEnterCSResult.Status.REJECTED,
+                    "node already has " + this.local_requests.size() + " pending requests");
+            return;
+        }
+        if (queue_ahead >= this.max_queue_ahead) {
+            audit(AuditLog.REJECT, null, 0);
+            finishLocalRequest(request, UEnterCSResult.Status.REJECTED,
+                    "about " + queue_ahead + " requests are already waiting for the token");
+            return;
+        }
+
+        if (msg.max_wait != null) {
+            request.timeout = getContext().getSystem().scheduler().scheduleOnce(
+                    msg.max_wait,
+                    getSelf(),
+                    new LocalRequestTimeout(request.local_id),
+                    getContext().getSystem().dispatcher(),
+                    getSelf());
+        }
+
+        this.local_requests.add(request);
+        audit(AuditLog.ACCEPT, null, (int) request.local_id);
+
+        // only the first local request puts us in the request_q. The others are handled when exiting the CS
+        if (this.local_requests.size() == 1) {
+            requestTokenForLocal();
+        }
+    }
+
+    /**
+     * Puts this node in its own request_q (through a RequestToken to itself), unless a previous request
+     * to itself hasn't been handled yet. That one will do, since it's only dropped if no local request is waiting.
+     */
+    private void requestTokenForLocal() {
+        if (!this.self_request_pending) {
+            this.self_request_pending = true;
+            getSelf().tell(new RequestToken(), getSelf());
+        }
+    }
+
+    /**
+     * Estimate of how many requests would be served before a new local one: the ones queued here (our own local
+     * requests count one by one), plus the queue depth that our holder reported to us.
+     */
+    private int estimateQueueAhead() {
+        int ahead = this.local_requests.size() + this.upstream_depth;
+        for (ActorRef requester : this.request_q) {
+            if (!requester.equals(getSelf())) {
+                ahead++;
+            }
+        }
+        if (this.using) {
+            ahead++;
+        }
+        return ahead;
+    }
+
+    /**
+     * Tells the requesters in request_q how many requests are ahead of them, if that is at least
+     * `queue_depth_report`. A requester that was told about a depth gets an update every time its depth changes,
+     * including a last one when it falls below `queue_depth_report`, so that it doesn't keep rejecting local
+     * requests because of a queue that has already drained.
+     */
+    private void reportQueueDepths() {
+        this.reported_depths.keySet().retainAll(this.request_q); // the others got the token
+
+        for (int i = 0; i < this.request_q.size(); i++) {
+            ActorRef requester = this.request_q.get(i);
+            if (requester.equals(getSelf())) {
+                continue;
+            }
+
+            int depth = i + this.upstream_depth;
+            Integer reported = this.reported_depths.get(requester);
+
+            if (depth >= this.queue_depth_report) {
+                if (reported == null || reported != depth) {
+                    this.reported_depths.put(requester, depth);
+                    requester.tell(new QueueDepth(depth), getSelf());
+                }
+            } else if (reported != null) {
+                this.reported_depths.remove(requester);
+                requester.tell(new QueueDepth(depth), getSelf());
+            }
+        }
+    }
+
+    /**
+     * When our holder tells us how many requests are ahead of us
+     *
+     * @param msg
+     */
+    private void handleQueueDepth(QueueDepth msg) {
+        // the token might have already passed by, in which case the information is outdated
+        if (getSender().equals(this.holder)) {
+            log.info("Holder '{}' reports {} requests ahead of us", getSender().path().name(), msg.depth);
+            this.upstream_depth = msg.depth;
+
+            // the requesters queued here are behind the same requests
+            reportQueueDepths();
+        }
+    }
+
+    /**
+     * Gives up on a local request that has waited for too long. Requests that are already in the CS are left alone.
+     *
+     * @param msg
+     */
+    private void handleLocalRequestTimeout(LocalRequestTimeout msg) {
+        for (int i = 0; i < this.local_requests.size(); i++) {
+            LocalRequest request = this.local_requests.get(i);
+            if (request.local_id != msg.local_id) {
+                continue;
+            }
+            if (i < this.current_batch) {
+                return;
+            }
+
+            this.local_requests.remove(request);
+            audit(AuditLog.TIMEOUT, null, (int) request.local_id);
+            finishLocalRequest(request, UEnterCSResult.Status.TIMED_OUT, "waited too long for the token");
+
+            // nothing left to do in the CS, so we no longer need the token
+            if (this.local_requests.isEmpty() && !this.using && this.request_q.remove(getSelf())) {
+                reportQueueDepths();
+            }
+            return;
+        }
+    }
+
+    private void finishLocalRequest(LocalRequest request, UEnterCSResult.Status status, String reason) {
+        if (request.timeout != null) {
+            request.timeout.cancel();
+        }
+
+        log.info("SM: Request {} {}: {}", request.local_id, status, reason);
+
+        if (!request.reply_to.equals(getContext().getSystem().deadLetters())) {
+            request.reply_to.tell(
+                    new UEnterCSResult(request.request_id, status, reason, request.queue_ahead),
+                    getSelf());
+        }
+    }
+
+    private void audit(byte type, ActorRef peer, int arg) {
+        if (this.audit_log != null) {
+            this.audit_log.record(type, peer, arg);
+        }
+    }
+
+    private void uenableAuditLog(UEnableAuditLog msg) {
+        if (this.audit_log != null) {
+            log.info("Audit log already enabled. Ignoring");
+            return;
+        }
+
+        File directory = new File(msg.directory);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            log.error("Couldn't create the audit log directory {}. Audit log NOT enabled", msg.directory);
+            return;
+        }
+        if (!directory.canWrite()) {
+            log.error("Can't write to the audit log directory {}. Audit log NOT enabled", msg.directory);
+            return;
+        }
+
+        String file_path = new File(directory, getSelf().path().name() + ".dmxa").getPath();
+        log.info("User enabled the audit log. Writing to {}", file_path);
+
+        this.audit_log_writer = getContext().actorOf(AuditLogWriter.props(file_path), "audit_log");
+        getContext().watch(this.audit_log_writer); // so that we know if it couldn't open the file
+        this.audit_log = new AuditLog(this.audit_log_writer, getSelf().path().name());
+
+        // children are stopped before their parent, so the last events have to be written while the whole system
+        // is still running. The task only waits for the file to be closed, or gives up after a while
+        final ActorRef self = getSelf();
+        CoordinatedShutdown.get(getContext().getSystem()).addTask(
+                CoordinatedShutdown.PhaseBeforeActorSystemTerminate(),
+                "close-audit-log-" + self.path().name(),
+                () -> Patterns.ask(self, new CloseAuditLog(), AUDIT_CLOSE_TIMEOUT)
+                        .handle((reply, error) -> Done.getInstance()));
+
+        getSelf().tell(new FlushAuditLog(), getSelf());
+    }
+
+    private void handleFlushAuditLog(FlushAuditLog msg) {
+        if (this.audit_log == null) {
+            return; // closed
+        }
+        this.audit_log.flush();
+
+        getContext().getSystem().scheduler().scheduleOnce(
+                AUDIT_FLUSH_INTERVAL,
+                getSelf(),
+                new FlushAuditLog(),
+                getContext().getSystem().dispatcher(),
+                getSelf());
+    }
+
+    /**
+     * The audit log writer only stops on its own if it fails (e.g. it can't open its file). In that case
+     * logging is disabled, instead of sending the events to a writer that doesn't exist anymore.
+     *
+     * @param msg
+     */
+    private void handleTerminated(Terminated msg) {
+        if (msg.getActor().equals(this.audit_log_writer) && this.audit_log != null) {
+            log.error("The audit log writer stopped. Audit log disabled");
+            this.audit_log = null;
+        }
+    }
+
+    private void handleCloseAuditLog(CloseAuditLog msg) {
+        if (this.audit_log == null) {
+            getSender().tell(Done.getInstance(), getSelf());
+            return;
+        }
+
+        this.audit_log.flush();
+        this.audit_log = null;
+
+        // the writer answers to whoever asked us to close the log
+        this.audit_log_writer.forward(new AuditLogWriter.Close(), getContext());
+    }
+
+    private void usetBatchSize(USetBatchSize msg) {
+        log.info("User set batch size to {}", msg.batch_size);
+        this.batch_size = Math.max(1, msg.batch_size);
+    }
+
+    private void usetAdmissionLimits(USetAdmissionLimits msg) {
+        log.info("User set admission limits: max_pending_local={} max_queue_ahead={} queue_depth_report={}",
+                msg.max_pending_local, msg.max_queue_ahead, msg.queue_depth_report);
+        this.max_pending_local = msg.max_pending_local;
+        this.max_queue_ahead = msg.max_queue_ahead;
+        this.queue_depth_report = msg.queue_depth_report;
+    }
+
+    private void usetPrefetch(USetPrefetch msg) {
+        log.info("User set prefetch to {}", msg.enabled);
+        this.prefetch_enabled = msg.enabled;
     }
 
     private void usimulateCrash(USimulateCrash msg) {
@@ -522,7 +1245,8 @@ public class NodeAct extends AbstractActorWithStash {
                         "\tAsked: {}\n" +
                         "\tRecovering: {}\n" +
                         "\tSize request_q: {}\n" +
-                        "\trequest_q nodes: " + request_q_nodes_names,
+                        "\trequest_q nodes: " + request_q_nodes_names + "\n" +
+                        "\tPending local requests: " + this.local_requests.size(),
                 this.holder != null ? this.holder.path().name() : "null",
                 this.asked,
                 this.is_recovering,
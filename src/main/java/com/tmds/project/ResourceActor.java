@@ -14,12 +14,23 @@ public class ResourceActor extends AbstractActor {
 
     private LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
 
+    private final Duration access_duration; // how long each access to the resource takes
+    private final ActorRef monitor; // told about every overlapping access (can be null)
 
-    public ResourceActor() {
+    private ActorRef current_user; // node that is currently accessing the resource (null if none)
+
+    public ResourceActor(Duration access_duration, ActorRef monitor) {
+        this.access_duration = access_duration;
+        this.monitor = monitor;
+        this.current_user = null;
     }
 
     static public Props props() {
-        return Props.create(ResourceActor.class, () -> new ResourceActor());
+        return props(Duration.ofMillis(4000), null);
+    }
+
+    static public Props props(Duration access_duration, ActorRef monitor) {
+        return Props.create(ResourceActor.class, () -> new ResourceActor(access_duration, monitor));
     }
 
     // ----------------------------------------------------
@@ -28,8 +39,45 @@ public class ResourceActor extends AbstractActor {
     /**
      * Message sent from a {@link NodeAct} actor which signifies that said actor wants to use this
      * resource. The sending of this message implies that the sender holds the token and is using it.
+     * A single message can carry several entries to the CS, which are executed one after the other.
      */
     static public class AccessResource {
+        public final int entries;
+
+        public AccessResource() {
+            this(1);
+        }
+
+        public AccessResource(int entries) {
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Message that the resource sends to itself once the access of `user` has finished
+     */
+    static public class ReleaseResource {
+        public final ActorRef user;
+        public final int entries;
+
+        public ReleaseResource(ActorRef user, int entries) {
+            this.user = user;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Sent to the monitor when a node accesses the resource while another one is still using it. This
+     * means that mutual exclusion has been violated.
+     */
+    static public class OverlapDetected {
+        public final ActorRef current_user;
+        public final ActorRef new_user;
+
+        public OverlapDetected(ActorRef current_user, ActorRef new_user) {
+            this.current_user = current_user;
+            this.new_user = new_user;
+        }
     }
 
     // ----------------------------------------------------
@@ -39,23 +87,43 @@ public class ResourceActor extends AbstractActor {
         // this should potentially print something stating that the
         // resource is being accessed, and the id of the actor accessing it
         ActorRef resource_user = getSender();
-        log.info("Node '{}' is currently accessing the resource", resource_user.path().name());
+        log.info("Node '{}' is currently accessing the resource ({} entries)", resource_user.path().name(), msg.entries);
+
+        if (this.current_user != null) {
+            log.error("Node '{}' accessed the resource while '{}' was still using it!",
+                    resource_user.path().name(),
+                    this.current_user.path().name());
+
+            if (this.monitor != null) {
+                this.monitor.tell(new OverlapDetected(this.current_user, resource_user), getSelf());
+            }
+        }
+        this.current_user = resource_user;
 
         getContext().getSystem().scheduler().scheduleOnce(
-                Duration.ofMillis(4000),
-                resource_user,
-                new NodeAct.ExitCriticalSection(),
+                this.access_duration.multipliedBy(msg.entries),
+                getSelf(),
+                new ReleaseResource(resource_user, msg.entries),
                 getContext().getSystem().dispatcher(),
                 getSelf());
 
     }
 
+    private void handleResourceRelease(ReleaseResource msg) {
+        if (msg.user.equals(this.current_user)) {
+            this.current_user = null;
+        }
+
+        msg.user.tell(new NodeAct.ExitCriticalSection(msg.entries), getSelf());
+    }
+
     // ----------------------------------------------------
     // mapping between message classes and methods for handling
     @Override
     public Receive createReceive() {
         return receiveBuilder()
                 .match(AccessResource.class, this::handleResourceAccess)
+                .match(ReleaseResource.class, this::handleResourceRelease)
                 .build();
     }
 }
@@ -0,0 +1,316 @@
+package com.tmds.project;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+public class SnapshotCollector extends AbstractActor {
+
+    private LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+
+    private final int expected_nodes; // how many NodeSnapshot messages make up a complete snapshot
+    private final Duration timeout; // give up on a snapshot that isn't complete after this long
+
+    private int last_snapshot_id; // id given to the last snapshot that was started
+    private HashMap<Integer, List<NodeSnapshot>> partial_snapshots; // local states received so far, per snapshot
+    private HashMap<Integer, ActorRef> snapshot_requesters; // who asked for each snapshot (to reply with the result)
+
+    public SnapshotCollector(int expected_nodes, Duration timeout) {
+        this.expected_nodes = expected_nodes;
+        this.timeout = timeout;
+
+        this.last_snapshot_id = 0;
+        this.partial_snapshots = new HashMap<>();
+        this.snapshot_requesters = new HashMap<>();
+    }
+
+    static public Props props(int expected_nodes) {
+        return props(expected_nodes, Duration.ofSeconds(10));
+    }
+
+    static public Props props(int expected_nodes, Duration timeout) {
+        return Props.create(SnapshotCollector.class, () -> new SnapshotCollector(expected_nodes, timeout));
+    }
+
+    // ----------------------------------------------------
+    // Message classes that are handled
+
+    /**
+     * Message sent by the user to start a new global snapshot. The snapshot is started at `initiator`
+     * and then spreads through the tree along with the markers
+     */
+    static public class TakeSnapshot {
+        public final ActorRef initiator;
+
+        public TakeSnapshot(ActorRef initiator) {
+            this.initiator = initiator;
+        }
+    }
+
+    /**
+     * Message that the collector sends to itself when a snapshot has been running for `timeout`. A node that isn't
+     * part of the tree yet (or a node that crashes for good) never sends its local state, nor forwards the markers
+     * to its neighbors, so without this the snapshot would never complete.
+     */
+    static public class ExpireSnapshot {
+        public final int snapshot_id;
+
+        public ExpireSnapshot(int snapshot_id) {
+            this.snapshot_id = snapshot_id;
+        }
+    }
+
+    /**
+     * A message that was in transit on the channel `from` -> `to` when the snapshot was taken
+     */
+    static public class ChannelMessage {
+        public final String from;
+        public final String to;
+        public final String type; // simple class name of the message (e.g. `SendToken`)
+
+        public ChannelMessage(String from, String to, String type) {
+            this.from = from;
+            this.to = to;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Message sent by a {@link NodeAct} once it has received a marker from all of its neighbors. It contains
+     * the state the node recorded, plus all the messages that were in transit towards it.
+     */
+    static public class NodeSnapshot {
+        public final int snapshot_id;
+        public final String node;
+        public final String holder; // null if the node was recovering and didn't know its holder
+        public final boolean asked;
+        public final boolean using;
+        public final boolean is_recovering;
+        public final List<String> request_q;
+        public final int pending_local; // requests to enter the CS accepted by the node and not finished yet
+        public final List<ChannelMessage> in_flight;
+
+        public NodeSnapshot(int snapshot_id, String node, String holder, boolean asked, boolean using,
+                            boolean is_recovering, List<String> request_q, int pending_local,
+                            List<ChannelMessage> in_flight) {
+            this.snapshot_id = snapshot_id;
+            this.node = node;
+            this.holder = holder;
+            this.asked = asked;
+            this.using = using;
+            this.is_recovering = is_recovering;
+            this.request_q = request_q;
+            this.pending_local = pending_local;
+            this.in_flight = in_flight;
+        }
+    }
+
+    /**
+     * The consistent global state put together from the {@link NodeSnapshot} of every node. It is sent
+     * back to whoever sent the {@link TakeSnapshot} message (if anyone). A snapshot that expired before all
+     * the nodes sent their local state is sent back too, with `complete` set to false.
+     */
+    static public class GlobalSnapshot {
+        public final int snapshot_id;
+        public final List<NodeSnapshot> nodes;
+        public final int token_count; // nodes holding the token + tokens in transit. Should always be 1
+        public final boolean complete; // false if some nodes are missing (and so the token might be missing too)
+
+        public GlobalSnapshot(int snapshot_id, List<NodeSnapshot> nodes, int token_count) {
+            this(snapshot_id, nodes, token_count, true);
+        }
+
+        public GlobalSnapshot(int snapshot_id, List<NodeSnapshot> nodes, int token_count, boolean complete) {
+            this.snapshot_id = snapshot_id;
+            this.nodes = nodes;
+            this.token_count = token_count;
+            this.complete = complete;
+        }
+    }
+
+    // ----------------------------------------------------
+    // implementation of handling for messages
+
+    private void handleTakeSnapshot(TakeSnapshot msg) {
+        this.last_snapshot_id++;
+        this.partial_snapshots.put(this.last_snapshot_id, new ArrayList<>());
+        this.snapshot_requesters.put(this.last_snapshot_id, getSender());
+
+        log.info("SM: Starting snapshot {} at node {}", this.last_snapshot_id, msg.initiator.path().name());
+        msg.initiator.tell(new NodeAct.SnapshotMarker(this.last_snapshot_id, getSelf()), ActorRef.noSender());
+
+        getContext().getSystem().scheduler().scheduleOnce(
+                this.timeout,
+                getSelf(),
+                new ExpireSnapshot(this.last_snapshot_id),
+                getContext().getSystem().dispatcher(),
+                getSelf());
+    }
+
+    private void handleNodeSnapshot(NodeSnapshot msg) {
+        List<NodeSnapshot> received = this.partial_snapshots.get(msg.snapshot_id);
+        if (received == null) {
+            log.info("Received local state of {} for unknown snapshot {}. Ignoring", msg.node, msg.snapshot_id);
+            return;
+        }
+
+        received.add(msg);
+        if (received.size() < this.expected_nodes) {
+            return;
+        }
+
+        finishSnapshot(msg.snapshot_id, true);
+    }
+
+    /**
+     * Gives up on a snapshot that is still waiting for some local states, and sends back what was received
+     *
+     * @param msg
+     */
+    private void handleExpireSnapshot(ExpireSnapshot msg) {
+        List<NodeSnapshot> received = this.partial_snapshots.get(msg.snapshot_id);
+        if (received == null) {
+            return; // already complete
+        }
+
+        log.warning("Snapshot {} expired with the local state of {} out of {} nodes",
+                msg.snapshot_id, received.size(), this.expected_nodes);
+        finishSnapshot(msg.snapshot_id, false);
+    }
+
+    private void finishSnapshot(int snapshot_id, boolean complete) {
+        List<NodeSnapshot> received = this.partial_snapshots.remove(snapshot_id);
+        ActorRef requester = this.snapshot_requesters.remove(snapshot_id);
+
+        received.sort((a, b) -> a.node.compareTo(b.node));
+        GlobalSnapshot snapshot = new GlobalSnapshot(snapshot_id,
+                Collections.unmodifiableList(received),
+                countTokens(received),
+                complete);
+
+        if (log.isInfoEnabled()) {
+            log.info(describe(snapshot));
+        }
+
+        if (requester != null && !requester.equals(getContext().getSystem().deadLetters())) {
+            requester.tell(snapshot, getSelf());
+        }
+    }
+
+    /**
+     * A node holds the token when it is its own holder. A token is in transit when a `SendToken` message
+     * was recorded on some channel.
+     */
+    static private int countTokens(List<NodeSnapshot> nodes) {
+        int tokens = 0;
+        for (NodeSnapshot node : nodes) {
+            if (node.node.equals(node.holder)) {
+                tokens++;
+            }
+            for (ChannelMessage cm : node.in_flight) {
+                if (cm.type.equals(NodeAct.SendToken.class.getSimpleName())) {
+                    tokens++;
+                }
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Follows the `holder` pointers starting at `node`. Returns the node at which the chain ends (the one
+     * that thinks it holds the token), or null if the chain is broken (cycle or a node without holder).
+     */
+    static private String holderChainEnd(String node, HashMap<String, NodeSnapshot> by_name) {
+        HashSet<String> visited = new HashSet<>();
+        String current = node;
+
+        while (current != null && visited.add(current)) {
+            NodeSnapshot ns = by_name.get(current);
+            if (ns == null || ns.holder == null) {
+                return null;
+            }
+            if (ns.holder.equals(current)) {
+                return current;
+            }
+            current = ns.holder;
+        }
+        return null;
+    }
+
+    static private String describe(GlobalSnapshot snapshot) {
+        HashMap<String, NodeSnapshot> by_name = new HashMap<>();
+        for (NodeSnapshot ns : snapshot.nodes) {
+            by_name.put(ns.node, ns);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("Global snapshot ").append(snapshot.snapshot_id)
+                .append(snapshot.complete ? ":\n" : " (INCOMPLETE):\n");
+
+        List<ChannelMessage> in_flight = new ArrayList<>();
+        for (NodeSnapshot ns : snapshot.nodes) {
+            sb.append("\t").append(ns.node)
+                    .append(" holder=").append(ns.holder)
+                    .append(" asked=").append(ns.asked)
+                    .append(" using=").append(ns.using)
+                    .append(" recovering=").append(ns.is_recovering)
+                    .append(" request_q=").append(ns.request_q)
+                    .append(" pending_local=").append(ns.pending_local)
+                    .append("\n");
+            in_flight.addAll(ns.in_flight);
+        }
+
+        sb.append("\tIn transit:");
+        if (in_flight.isEmpty()) {
+            sb.append(" none");
+        }
+        for (ChannelMessage cm : in_flight) {
+            sb.append("\n\t\t").append(cm.type).append(": ").append(cm.from).append(" -> ").append(cm.to);
+        }
+
+        sb.append("\n\tTokens: ").append(snapshot.token_count);
+        if (snapshot.token_count > 1 || (snapshot.complete && snapshot.token_count != 1)) {
+            sb.append(" (WARNING: expected exactly one)");
+        }
+
+        // nodes whose holder chain doesn't end at a node holding the token. This is expected for nodes
+        // whose chain passes through a token in transit, or through a recovering node
+        List<String> broken_chains = new ArrayList<>();
+        for (NodeSnapshot ns : snapshot.nodes) {
+            if (holderChainEnd(ns.node, by_name) == null) {
+                broken_chains.add(ns.node);
+            }
+        }
+        sb.append("\n\tNodes whose holder chain doesn't reach a holder: ").append(broken_chains);
+
+        // where requests are piling up
+        List<NodeSnapshot> by_queue = new ArrayList<>(snapshot.nodes);
+        by_queue.sort((a, b) -> Integer.compare(b.request_q.size(), a.request_q.size()));
+        sb.append("\n\tLongest request_q:");
+        for (int i = 0; i < Math.min(5, by_queue.size()) && !by_queue.get(i).request_q.isEmpty(); i++) {
+            sb.append(" ").append(by_queue.get(i).node).append("(").append(by_queue.get(i).request_q.size()).append(")");
+        }
+
+        return sb.toString();
+    }
+
+    // ----------------------------------------------------
+    // mapping between message classes and methods for handling
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(TakeSnapshot.class, this::handleTakeSnapshot)
+                .match(NodeSnapshot.class, this::handleNodeSnapshot)
+                .match(ExpireSnapshot.class, this::handleExpireSnapshot)
+                .build();
+    }
+}
@@ -0,0 +1,174 @@
+package com.tmds.project;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import com.typesafe.config.ConfigFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Randomized stress test for the whole system. It builds a random tree, then the {@link StressMonitor} sends random
+ * requests to enter the CS and random crashes to the nodes, with random delays, while checking that:
+ * <ul>
+ * <li>no two nodes access the {@link ResourceActor} at the same time</li>
+ * <li>no snapshot ever contains more than one token, and the final one contains exactly one</li>
+ * <li>no request waits longer than `wait_bound_ms` for its result</li>
+ * </ul>
+ * Settings are given as `key=value` arguments (see {@link Settings}). The tree and the sequence of operations only
+ * depend on the seed, which is printed at the start and along with every violation. The exact interleaving of
+ * messages still depends on the scheduling of the actors, so a failure may need a few runs to show up again.
+ */
+public class StressHarness {
+
+    static public class Settings {
+        public final long seed;
+        public final int nodes; // number of nodes in the tree
+        public final Duration duration; // how long operations are issued for
+        public final Duration tick; // time between two batches of operations
+        public final int ops_per_tick;
+        public final double crash_probability; // probability that an operation is a crash instead of a CS request
+        public final Duration max_jitter; // each operation is delayed by a random time up to this
+        public final Duration cs_duration; // time spent in each access to the resource
+        public final Duration wait_bound; // a request taking longer than this is a liveness violation
+        public final int snapshot_every_ticks; // check the number of tokens every this many ticks
+        public final int batch_size; // max number of local requests executed with a single access to the resource
+        public final String audit_dir; // directory where the nodes write their audit logs (null to disable)
+        public final boolean prefetch; // whether idle holders push the token towards the most frequent requester
+        public final Duration max_wait; // requests give up after this long (null to wait forever)
+        public final int max_pending; // admission limits of every node (see NodeAct.USetAdmissionLimits)
+        public final int max_ahead;
+        public final int report_depth;
+
+        public Settings(HashMap<String, String> args) {
+            this.seed = Long.parseLong(args.getOrDefault("seed", Long.toString(System.nanoTime())));
+            this.nodes = Integer.parseInt(args.getOrDefault("nodes", "500"));
+            this.duration = Duration.ofSeconds(Long.parseLong(args.getOrDefault("seconds", "60")));
+            this.tick = Duration.ofMillis(Long.parseLong(args.getOrDefault("tick_ms", "20")));
+            this.ops_per_tick = Integer.parseInt(args.getOrDefault("ops_per_tick", "2"));
+            this.crash_probability = Double.parseDouble(args.getOrDefault("crash_probability", "0.002"));
+            this.max_jitter = Duration.ofMillis(Long.parseLong(args.getOrDefault("max_jitter_ms", "10")));
+            this.cs_duration = Duration.ofMillis(Long.parseLong(args.getOrDefault("cs_ms", "1")));
+            this.wait_bound = Duration.ofMillis(Long.parseLong(args.getOrDefault("wait_bound_ms", "30000")));
+            this.snapshot_every_ticks = Integer.parseInt(args.getOrDefault("snapshot_every_ticks", "100"));
+            this.batch_size = Integer.parseInt(args.getOrDefault("batch_size", "1"));
+            this.audit_dir = args.get("audit_dir");
+            this.prefetch = Boolean.parseBoolean(args.getOrDefault("prefetch", "false"));
+            this.max_wait = args.containsKey("max_wait_ms")
+                    ? Duration.ofMillis(Long.parseLong(args.get("max_wait_ms")))
+                    : null;
+            this.max_pending = Integer.parseInt(args.getOrDefault("max_pending", "8"));
+            this.max_ahead = Integer.parseInt(args.getOrDefault("max_ahead", "64"));
+            this.report_depth = Integer.parseInt(args.getOrDefault("report_depth", "4"));
+        }
+
+        /**
+         * Settings from `key=value` arguments. Missing keys take their default value
+         */
+        static public Settings parse(String... args) {
+            HashMap<String, String> parsed_args = new HashMap<>();
+            for (String arg : args) {
+                String[] kv = arg.split("=", 2);
+                parsed_args.put(kv[0], kv.length > 1 ? kv[1] : "");
+            }
+            return new Settings(parsed_args);
+        }
+
+        @Override
+        public String toString() {
+            return "seed=" + seed + " nodes=" + nodes + " seconds=" + duration.getSeconds() +
+                    " tick_ms=" + tick.toMillis() + " ops_per_tick=" + ops_per_tick +
+                    " crash_probability=" + crash_probability + " max_jitter_ms=" + max_jitter.toMillis() +
+                    " cs_ms=" + cs_duration.toMillis() + " wait_bound_ms=" + wait_bound.toMillis() +
+                    " snapshot_every_ticks=" + snapshot_every_ticks + " batch_size=" + batch_size +
+                    " prefetch=" + prefetch + (max_wait != null ? " max_wait_ms=" + max_wait.toMillis() : "") +
+                    " max_pending=" + max_pending + " max_ahead=" + max_ahead + " report_depth=" + report_depth +
+                    (audit_dir != null ? " audit_dir=" + audit_dir : "");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Settings settings = Settings.parse(args);
+        System.out.println("> Stress run with: " + settings);
+
+        List<String> violations = run(settings);
+
+        if (violations.isEmpty()) {
+            System.out.println("> No violations found");
+            System.exit(0);
+        }
+
+        System.out.println("> Found " + violations.size() + " violations:");
+        for (String violation : violations) {
+            System.out.println("\t" + violation);
+        }
+        System.out.println("> Reproduce with: " + settings);
+        System.exit(1);
+    }
+
+    /**
+     * Runs the whole stress test and returns the violations that were found (empty if none)
+     */
+    public static List<String> run(Settings settings) throws Exception {
+        // the nodes log every message at INFO level, which would drown everything else
+        final ActorSystem system = ActorSystem.create("DMX",
+                ConfigFactory.parseString("akka.loglevel = WARNING").withFallback(ConfigFactory.load()));
+
+        List<String> violations;
+        try {
+            final ActorRef snapshot_collector = system.actorOf(
+                    SnapshotCollector.props(settings.nodes), "SnapshotCollector");
+            CompletableFuture<List<String>> done = new CompletableFuture<>();
+            final ActorRef monitor = system.actorOf(
+                    StressMonitor.props(settings, snapshot_collector, done), "StressMonitor");
+            final ActorRef resource = system.actorOf(
+                    ResourceActor.props(settings.cs_duration, monitor), "Bathroom");
+
+            List<ActorRef> nodes = new ArrayList<>();
+            List<HashSet<ActorRef>> neighbors = new ArrayList<>();
+            for (int i = 0; i < settings.nodes; i++) {
+                nodes.add(system.actorOf(NodeAct.props(resource), "node_" + i));
+                neighbors.add(new HashSet<>());
+            }
+
+            // random tree: every node hangs from one of the nodes created before it
+            Random tree_random = new Random(settings.seed);
+            for (int i = 1; i < settings.nodes; i++) {
+                int parent = tree_random.nextInt(i);
+                neighbors.get(i).add(nodes.get(parent));
+                neighbors.get(parent).add(nodes.get(i));
+            }
+
+            for (int i = 0; i < settings.nodes; i++) {
+                nodes.get(i).tell(new NodeAct.SetNeighbors(neighbors.get(i)), ActorRef.noSender());
+                nodes.get(i).tell(new NodeAct.USetBatchSize(settings.batch_size), ActorRef.noSender());
+                nodes.get(i).tell(new NodeAct.USetPrefetch(settings.prefetch), ActorRef.noSender());
+                nodes.get(i).tell(new NodeAct.USetAdmissionLimits(
+                        settings.max_pending, settings.max_ahead, settings.report_depth), ActorRef.noSender());
+                if (settings.audit_dir != null) {
+                    nodes.get(i).tell(new NodeAct.UEnableAuditLog(settings.audit_dir), ActorRef.noSender());
+                }
+            }
+
+            nodes.get(tree_random.nextInt(settings.nodes)).tell(new NodeAct.Initialize(true), ActorRef.noSender());
+
+            // Ensure nodes have been initialized correctly
+            Thread.sleep(1000 + settings.nodes);
+
+            monitor.tell(new StressMonitor.Start(nodes), ActorRef.noSender());
+            violations = done.get();
+
+        } finally {
+            // wait for the shutdown to finish, so that the audit logs are complete before we exit
+            system.terminate();
+            system.getWhenTerminated().toCompletableFuture().get();
+        }
+
+        return violations;
+    }
+}
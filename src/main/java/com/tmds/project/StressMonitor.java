@@ -0,0 +1,272 @@
+package com.tmds.project;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+public class StressMonitor extends AbstractActor {
+
+    private LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+
+    private final StressHarness.Settings settings;
+    private final ActorRef snapshot_collector;
+    private final CompletableFuture<List<String>> done; // completed with the list of violations at the end of the run
+
+    private List<ActorRef> nodes; // nodes that receive the operations (given by the Start message)
+    private final Random random; // every random decision comes from here, so that a seed gives the same workload
+    private long start_time; // System.nanoTime() when the run started
+    private long ticks;
+    private boolean finishing; // no more operations are issued, we're waiting for the final snapshot
+
+    private long last_request_id;
+    private HashMap<Long, Long> outstanding; // request id -> System.nanoTime() when the request was issued
+    private HashMap<Long, ActorRef> outstanding_nodes; // request id -> node that got the request
+    private List<String> violations;
+
+    // statistics
+    private long completed;
+    private long rejected;
+    private long timed_out;
+    private long aborted;
+    private long crashes;
+    private long snapshots;
+    private long total_wait_ms;
+    private long max_wait_ms;
+
+    public StressMonitor(StressHarness.Settings settings, ActorRef snapshot_collector,
+                         CompletableFuture<List<String>> done) {
+        this.settings = settings;
+        this.snapshot_collector = snapshot_collector;
+        this.done = done;
+
+        this.random = new Random(settings.seed);
+        this.finishing = false;
+        this.last_request_id = 0;
+        this.outstanding = new HashMap<>();
+        this.outstanding_nodes = new HashMap<>();
+        this.violations = new ArrayList<>();
+    }
+
+    static public Props props(StressHarness.Settings settings, ActorRef snapshot_collector,
+                              CompletableFuture<List<String>> done) {
+        return Props.create(StressMonitor.class,
+                () -> new StressMonitor(settings, snapshot_collector, done));
+    }
+
+    // ----------------------------------------------------
+    // Message classes that are handled
+
+    /**
+     * Sent by the harness to start issuing operations, once the tree has been built and initialized.
+     * The monitor has to exist before the nodes since the {@link ResourceActor} reports to it.
+     */
+    static public class Start {
+        public final List<ActorRef> nodes;
+
+        public Start(List<ActorRef> nodes) {
+            this.nodes = nodes;
+        }
+    }
+
+    /**
+     * Message that the monitor sends to itself periodically to issue new operations and check for liveness
+     */
+    static public class Tick {
+    }
+
+    // ----------------------------------------------------
+    // implementation of handling for messages
+
+    private void handleStart(Start msg) {
+        this.nodes = msg.nodes;
+        this.start_time = System.nanoTime();
+        getSelf().tell(new Tick(), getSelf());
+    }
+
+    private void handleTick(Tick msg) {
+        if (this.finishing) {
+            return;
+        }
+
+        this.ticks++;
+        long elapsed_ms = elapsedMs(this.start_time);
+
+        if (elapsed_ms < this.settings.duration.toMillis()) {
+            for (int i = 0; i < this.settings.ops_per_tick; i++) {
+                issueOperation();
+            }
+        }
+
+        checkLiveness();
+
+        if (this.ticks % this.settings.snapshot_every_ticks == 0) {
+            takeSnapshot();
+        }
+
+        // the run is over once all requests have finished, or when the remaining ones are late anyway
+        if (elapsed_ms >= this.settings.duration.toMillis()
+                && (this.outstanding.isEmpty()
+                || elapsed_ms >= this.settings.duration.toMillis() + this.settings.wait_bound.toMillis())) {
+            this.finishing = true;
+            takeSnapshot();
+            return;
+        }
+
+        getContext().getSystem().scheduler().scheduleOnce(
+                this.settings.tick,
+                getSelf(),
+                new Tick(),
+                getContext().getSystem().dispatcher(),
+                getSelf());
+    }
+
+    /**
+     * Sends either a request to enter the CS or a crash to a random node, after a random delay
+     */
+    private void issueOperation() {
+        ActorRef node = this.nodes.get(this.random.nextInt(this.nodes.size()));
+        Duration jitter = Duration.ofMillis(this.random.nextInt((int) this.settings.max_jitter.toMillis() + 1));
+
+        Object operation;
+        if (this.random.nextDouble() < this.settings.crash_probability) {
+            this.crashes++;
+            operation = new NodeAct.USimulateCrash();
+        } else {
+            long request_id = ++this.last_request_id;
+            this.outstanding.put(request_id, System.nanoTime());
+            this.outstanding_nodes.put(request_id, node);
+            operation = new NodeAct.UEnterCS(request_id, this.settings.max_wait);
+        }
+
+        getContext().getSystem().scheduler().scheduleOnce(
+                jitter,
+                node,
+                operation,
+                getContext().getSystem().dispatcher(),
+                getSelf());
+    }
+
+    private void checkLiveness() {
+        List<Long> late = new ArrayList<>();
+        for (HashMap.Entry<Long, Long> entry : this.outstanding.entrySet()) {
+            if (elapsedMs(entry.getValue()) > this.settings.wait_bound.toMillis()) {
+                late.add(entry.getKey());
+            }
+        }
+
+        // each late request is reported only once
+        for (Long request_id : late) {
+            violation("liveness: request " + request_id + " to " + this.outstanding_nodes.get(request_id).path().name()
+                    + " has waited more than " + this.settings.wait_bound.toMillis() + "ms");
+            this.outstanding.remove(request_id);
+            this.outstanding_nodes.remove(request_id);
+        }
+    }
+
+    private void takeSnapshot() {
+        ActorRef initiator = this.nodes.get(this.random.nextInt(this.nodes.size()));
+        this.snapshot_collector.tell(new SnapshotCollector.TakeSnapshot(initiator), getSelf());
+    }
+
+    private void handleResult(NodeAct.UEnterCSResult msg) {
+        Long issued = this.outstanding.remove(msg.request_id);
+        this.outstanding_nodes.remove(msg.request_id);
+        if (issued == null) {
+            return; // already reported as late
+        }
+
+        switch (msg.status) {
+            case COMPLETED:
+                long wait_ms = elapsedMs(issued);
+                this.completed++;
+                this.total_wait_ms += wait_ms;
+                this.max_wait_ms = Math.max(this.max_wait_ms, wait_ms);
+                break;
+            case REJECTED:
+                this.rejected++;
+                break;
+            case TIMED_OUT:
+                this.timed_out++;
+                break;
+            case ABORTED:
+                this.aborted++;
+                break;
+        }
+    }
+
+    private void handleOverlap(ResourceActor.OverlapDetected msg) {
+        violation("safety: " + msg.new_user.path().name() + " entered the CS while "
+                + msg.current_user.path().name() + " was still in it");
+    }
+
+    /**
+     * More than one token is always an error. No token at all can happen for a short while, when the
+     * holder has crashed and is still recovering, so that is only checked on the final snapshot. A snapshot
+     * that never completed can't tell whether the token is missing, but the missing nodes are an error too.
+     *
+     * @param msg
+     */
+    private void handleSnapshot(SnapshotCollector.GlobalSnapshot msg) {
+        this.snapshots++;
+
+        if (msg.token_count > 1) {
+            violation("safety: snapshot " + msg.snapshot_id + " found " + msg.token_count + " tokens");
+        }
+        if (!msg.complete) {
+            violation("liveness: snapshot " + msg.snapshot_id + " only got the local state of " + msg.nodes.size()
+                    + " out of " + this.nodes.size() + " nodes");
+        }
+
+        if (!this.finishing) {
+            return;
+        }
+
+        if (msg.complete && msg.token_count != 1) {
+            violation("safety: final snapshot found " + msg.token_count + " tokens");
+        }
+
+        log.warning("Stress run finished. seed=" + this.settings.seed +
+                " completed=" + this.completed +
+                " rejected=" + this.rejected +
+                " timed_out=" + this.timed_out +
+                " aborted=" + this.aborted +
+                " crashes=" + this.crashes +
+                " snapshots=" + this.snapshots +
+                " avg_wait=" + (this.completed > 0 ? this.total_wait_ms / this.completed : 0) + "ms" +
+                " max_wait=" + this.max_wait_ms + "ms" +
+                " violations=" + this.violations.size());
+
+        this.done.complete(this.violations);
+    }
+
+    private void violation(String description) {
+        log.error("VIOLATION (seed={}): {}", this.settings.seed, description);
+        this.violations.add(description);
+    }
+
+    static private long elapsedMs(long since) {
+        return (System.nanoTime() - since) / 1_000_000;
+    }
+
+    // ----------------------------------------------------
+    // mapping between message classes and methods for handling
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(Start.class, this::handleStart)
+                .match(Tick.class, this::handleTick)
+                .match(NodeAct.UEnterCSResult.class, this::handleResult)
+                .match(ResourceActor.OverlapDetected.class, this::handleOverlap)
+                .match(SnapshotCollector.GlobalSnapshot.class, this::handleSnapshot)
+                .build();
+    }
+}
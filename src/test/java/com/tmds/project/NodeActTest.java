@@ -0,0 +1,150 @@
+package com.tmds.project;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class NodeActTest {
+
+    static private ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create("NodeActTest");
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    /**
+     * Creates a node whose neighbors are the given probes, and whose holder is the first of them
+     */
+    static private ActorRef nodeWithNeighbors(TestKit resource, TestKit... neighbors) {
+        ActorRef node = system.actorOf(NodeAct.props(resource.getRef()));
+
+        HashSet<ActorRef> neighbor_refs = new HashSet<>();
+        for (TestKit neighbor : neighbors) {
+            neighbor_refs.add(neighbor.getRef());
+        }
+        node.tell(new NodeAct.SetNeighbors(neighbor_refs), ActorRef.noSender());
+        node.tell(new NodeAct.Initialize(false), neighbors[0].getRef());
+
+        for (TestKit neighbor : neighbors) {
+            neighbor.expectMsgClass(NodeAct.Initialize.class);
+        }
+        return node;
+    }
+
+    @Test
+    public void rejectsRequestsOverThePendingLimit() {
+        TestKit resource = new TestKit(system);
+        TestKit holder = new TestKit(system);
+        TestKit user = new TestKit(system);
+        ActorRef node = nodeWithNeighbors(resource, holder);
+
+        node.tell(new NodeAct.USetAdmissionLimits(2, 64, 4), ActorRef.noSender());
+        node.tell(new NodeAct.UEnterCS(1, null), user.getRef());
+        node.tell(new NodeAct.UEnterCS(2, null), user.getRef());
+        node.tell(new NodeAct.UEnterCS(3, null), user.getRef());
+
+        holder.expectMsgClass(NodeAct.RequestToken.class);
+        NodeAct.UEnterCSResult result = user.expectMsgClass(NodeAct.UEnterCSResult.class);
+        assertEquals(3, result.request_id);
+        assertEquals(NodeAct.UEnterCSResult.Status.REJECTED, result.status);
+    }
+
+    @Test
+    public void rejectsRequestsWhileTheUpstreamQueueIsLong() {
+        TestKit resource = new TestKit(system);
+        TestKit holder = new TestKit(system);
+        TestKit user = new TestKit(system);
+        ActorRef node = nodeWithNeighbors(resource, holder);
+
+        node.tell(new NodeAct.USetAdmissionLimits(8, 10, 4), ActorRef.noSender());
+        node.tell(new NodeAct.QueueDepth(20), holder.getRef());
+        node.tell(new NodeAct.UEnterCS(1, null), user.getRef());
+
+        NodeAct.UEnterCSResult result = user.expectMsgClass(NodeAct.UEnterCSResult.class);
+        assertEquals(NodeAct.UEnterCSResult.Status.REJECTED, result.status);
+        assertEquals(20, result.queue_ahead);
+
+        // once the holder reports that the queue drained, requests are accepted again
+        node.tell(new NodeAct.QueueDepth(1), holder.getRef());
+        node.tell(new NodeAct.UEnterCS(2, null), user.getRef());
+
+        holder.expectMsgClass(NodeAct.RequestToken.class);
+        user.expectNoMessage();
+    }
+
+    @Test
+    public void timesOutRequestsThatWaitTooLong() {
+        TestKit resource = new TestKit(system);
+        TestKit holder = new TestKit(system);
+        TestKit user = new TestKit(system);
+        ActorRef node = nodeWithNeighbors(resource, holder);
+
+        node.tell(new NodeAct.UEnterCS(1, Duration.ofMillis(200)), user.getRef());
+
+        holder.expectMsgClass(NodeAct.RequestToken.class);
+        NodeAct.UEnterCSResult result = user.expectMsgClass(Duration.ofSeconds(3), NodeAct.UEnterCSResult.class);
+        assertEquals(1, result.request_id);
+        assertEquals(NodeAct.UEnterCSResult.Status.TIMED_OUT, result.status);
+
+        // the token is no longer needed, so it doesn't go into the CS when it arrives
+        node.tell(new NodeAct.SendToken(), holder.getRef());
+        resource.expectNoMessage();
+    }
+
+    @Test
+    public void updatesTheQueueDepthOfRequestersAsTheQueueDrains() {
+        TestKit resource = new TestKit(system);
+        TestKit holder = new TestKit(system);
+        List<TestKit> requesters = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            requesters.add(new TestKit(system));
+        }
+
+        List<TestKit> neighbors = new ArrayList<>();
+        neighbors.add(holder);
+        neighbors.addAll(requesters);
+        ActorRef node = nodeWithNeighbors(resource, neighbors.toArray(new TestKit[0]));
+
+        node.tell(new NodeAct.USetAdmissionLimits(8, 64, 2), ActorRef.noSender());
+        for (TestKit requester : requesters) {
+            node.tell(new NodeAct.RequestToken(), requester.getRef());
+        }
+        holder.expectMsgClass(NodeAct.RequestToken.class);
+
+        // the ones queued behind at least two others are told about it
+        requesters.get(0).expectNoMessage();
+        requesters.get(1).expectNoMessage();
+        assertEquals(2, requesters.get(2).expectMsgClass(NodeAct.QueueDepth.class).depth);
+        assertEquals(3, requesters.get(3).expectMsgClass(NodeAct.QueueDepth.class).depth);
+
+        // the token goes to the first requester and everyone else moves up
+        node.tell(new NodeAct.SendToken(), holder.getRef());
+        requesters.get(0).expectMsgClass(NodeAct.SendToken.class);
+        requesters.get(0).expectMsgClass(NodeAct.RequestToken.class);
+        assertEquals(1, requesters.get(2).expectMsgClass(NodeAct.QueueDepth.class).depth);
+        assertEquals(2, requesters.get(3).expectMsgClass(NodeAct.QueueDepth.class).depth);
+
+        // the last update a requester gets is the one that takes it below the threshold
+        node.tell(new NodeAct.SendToken(), requesters.get(0).getRef());
+        requesters.get(1).expectMsgClass(NodeAct.SendToken.class);
+        assertEquals(1, requesters.get(3).expectMsgClass(NodeAct.QueueDepth.class).depth);
+        requesters.get(2).expectNoMessage();
+    }
+}
@@ -0,0 +1,58 @@
+package com.tmds.project;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+
+public class ResourceActorTest {
+
+    static private ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create("ResourceActorTest");
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Test
+    public void reportsOverlappingAccesses() {
+        TestKit monitor = new TestKit(system);
+        TestKit first = new TestKit(system);
+        TestKit second = new TestKit(system);
+        ActorRef resource = system.actorOf(ResourceActor.props(Duration.ofMillis(500), monitor.getRef()));
+
+        resource.tell(new ResourceActor.AccessResource(), first.getRef());
+        resource.tell(new ResourceActor.AccessResource(), second.getRef());
+
+        ResourceActor.OverlapDetected overlap = monitor.expectMsgClass(ResourceActor.OverlapDetected.class);
+        assertEquals(first.getRef(), overlap.current_user);
+        assertEquals(second.getRef(), overlap.new_user);
+    }
+
+    @Test
+    public void sequentialAccessesDoNotOverlap() {
+        TestKit monitor = new TestKit(system);
+        TestKit user = new TestKit(system);
+        ActorRef resource = system.actorOf(ResourceActor.props(Duration.ofMillis(50), monitor.getRef()));
+
+        resource.tell(new ResourceActor.AccessResource(3), user.getRef());
+        NodeAct.ExitCriticalSection exit = user.expectMsgClass(NodeAct.ExitCriticalSection.class);
+        assertEquals(3, exit.entries);
+
+        resource.tell(new ResourceActor.AccessResource(), user.getRef());
+        user.expectMsgClass(NodeAct.ExitCriticalSection.class);
+        monitor.expectNoMessage();
+    }
+}
@@ -0,0 +1,66 @@
+package com.tmds.project;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotCollectorTest {
+
+    static private ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create("SnapshotCollectorTest");
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Test
+    public void collectsTheStateOfEveryNode() {
+        TestKit resource = new TestKit(system);
+        TestKit user = new TestKit(system);
+        ActorRef node = system.actorOf(NodeAct.props(resource.getRef()), "lonely_node");
+        node.tell(new NodeAct.SetNeighbors(new HashSet<>()), ActorRef.noSender());
+        node.tell(new NodeAct.Initialize(true), ActorRef.noSender());
+
+        ActorRef collector = system.actorOf(SnapshotCollector.props(1, Duration.ofMillis(500)));
+        collector.tell(new SnapshotCollector.TakeSnapshot(node), user.getRef());
+
+        SnapshotCollector.GlobalSnapshot snapshot = user.expectMsgClass(SnapshotCollector.GlobalSnapshot.class);
+        assertTrue(snapshot.complete);
+        assertEquals(1, snapshot.nodes.size());
+        assertEquals(1, snapshot.token_count);
+
+        // expiring a snapshot that already completed does nothing
+        user.expectNoMessage(Duration.ofSeconds(1));
+    }
+
+    @Test
+    public void expiresSnapshotsThatNeverComplete() {
+        TestKit resource = new TestKit(system);
+        TestKit user = new TestKit(system);
+        ActorRef node = system.actorOf(NodeAct.props(resource.getRef())); // doesn't know its neighbors yet
+
+        ActorRef collector = system.actorOf(SnapshotCollector.props(1, Duration.ofMillis(500)));
+        collector.tell(new SnapshotCollector.TakeSnapshot(node), user.getRef());
+
+        SnapshotCollector.GlobalSnapshot snapshot =
+                user.expectMsgClass(Duration.ofSeconds(3), SnapshotCollector.GlobalSnapshot.class);
+        assertFalse(snapshot.complete);
+        assertEquals(0, snapshot.nodes.size());
+    }
+}
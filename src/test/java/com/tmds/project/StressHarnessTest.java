@@ -0,0 +1,52 @@
+package com.tmds.project;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Short runs of the {@link StressHarness}. Longer runs, with bigger trees, are done with `gradle stress`.
+ */
+public class StressHarnessTest {
+
+    static private List<String> run(String... args) throws Exception {
+        return StressHarness.run(StressHarness.Settings.parse(args));
+    }
+
+    @Test
+    public void plainRun() throws Exception {
+        List<String> violations = run("seed=1", "nodes=50", "seconds=3", "crash_probability=0",
+                "wait_bound_ms=15000");
+        assertEquals(violations.toString(), 0, violations.size());
+    }
+
+    @Test
+    public void runWithOptimizations() throws Exception {
+        List<String> violations = run("seed=2", "nodes=50", "seconds=3", "crash_probability=0",
+                "wait_bound_ms=15000", "prefetch=true", "batch_size=4", "max_wait_ms=500",
+                "max_pending=4", "max_ahead=32", "report_depth=2");
+        assertEquals(violations.toString(), 0, violations.size());
+    }
+
+    @Test
+    public void runWithCrashes() throws Exception {
+        List<String> violations = run("seed=3", "nodes=30", "seconds=3", "crash_probability=0.01",
+                "wait_bound_ms=15000", "max_wait_ms=2000");
+        assertEquals(violations.toString(), 0, violations.size());
+    }
+
+    @Test
+    public void reportsLateRequests() throws Exception {
+        // every access to the resource takes longer than the bound, so every request is late
+        List<String> violations = run("seed=4", "nodes=10", "seconds=1", "crash_probability=0",
+                "cs_ms=200", "wait_bound_ms=50");
+        assertFalse(violations.isEmpty());
+        for (String violation : violations) {
+            assertTrue(violation, violation.startsWith("liveness:"));
+        }
+    }
+}
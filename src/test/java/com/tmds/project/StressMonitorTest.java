@@ -0,0 +1,54 @@
+package com.tmds.project;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class StressMonitorTest {
+
+    static private ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create("StressMonitorTest");
+    }
+
+    @AfterClass
+    public static void teardown() {
+        TestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Test
+    public void reportsSnapshotsWithMoreThanOneToken() throws Exception {
+        TestKit collector = new TestKit(system);
+        TestKit node = new TestKit(system);
+        CompletableFuture<List<String>> done = new CompletableFuture<>();
+
+        // a run without operations, which goes straight to the final snapshot
+        StressHarness.Settings settings = StressHarness.Settings.parse("seed=1", "seconds=0");
+        ActorRef monitor = system.actorOf(StressMonitor.props(settings, collector.getRef(), done));
+        monitor.tell(new StressMonitor.Start(Collections.singletonList(node.getRef())), ActorRef.noSender());
+
+        SnapshotCollector.TakeSnapshot take = collector.expectMsgClass(SnapshotCollector.TakeSnapshot.class);
+        assertEquals(node.getRef(), take.initiator);
+        monitor.tell(new SnapshotCollector.GlobalSnapshot(1, new ArrayList<>(), 2), collector.getRef());
+
+        List<String> violations = done.get(Duration.ofSeconds(3).toMillis(), TimeUnit.MILLISECONDS);
+        assertEquals(violations.toString(), 2, violations.size());
+        assertEquals("safety: snapshot 1 found 2 tokens", violations.get(0));
+        assertEquals("safety: final snapshot found 2 tokens", violations.get(1));
+    }
+}